@@ -0,0 +1,131 @@
+package com.example.rag.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings for {@link com.example.rag.service.LlmAdmissionService}, bound from {@code rag.llm.admission.*}.
+ */
+@Component
+@ConfigurationProperties(prefix = "rag.llm.admission")
+public class LlmAdmissionProperties {
+
+    private final User user = new User();
+    private final Limit limit = new Limit();
+    private final Queue queue = new Queue();
+    private long targetLatencyMs = 15000;
+    private long deadlineMs = 30000;
+
+    public User getUser() {
+        return user;
+    }
+
+    public Limit getLimit() {
+        return limit;
+    }
+
+    public Queue getQueue() {
+        return queue;
+    }
+
+    public long getTargetLatencyMs() {
+        return targetLatencyMs;
+    }
+
+    public void setTargetLatencyMs(long targetLatencyMs) {
+        this.targetLatencyMs = targetLatencyMs;
+    }
+
+    /**
+     * End-to-end budget for a query, measured from admission. Requests that can no longer finish
+     * a typical model call within it are shed.
+     */
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    public void setDeadlineMs(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Per-user token bucket. Only applies to callers that identify themselves.
+     */
+    public static class User {
+        private int burst = 5;
+        private double refillPerMinute = 30;
+        private int maxTracked = 10000;
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+
+        public double getRefillPerMinute() {
+            return refillPerMinute;
+        }
+
+        public void setRefillPerMinute(double refillPerMinute) {
+            this.refillPerMinute = refillPerMinute;
+        }
+
+        public int getMaxTracked() {
+            return maxTracked;
+        }
+
+        public void setMaxTracked(int maxTracked) {
+            this.maxTracked = maxTracked;
+        }
+    }
+
+    /**
+     * Bounds for the adaptive global concurrency limit.
+     */
+    public static class Limit {
+        private int initial = 8;
+        private int min = 1;
+        private int max = 64;
+
+        public int getInitial() {
+            return initial;
+        }
+
+        public void setInitial(int initial) {
+            this.initial = initial;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public void setMin(int min) {
+            this.min = min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public void setMax(int max) {
+            this.max = max;
+        }
+    }
+
+    /**
+     * Queue for requests waiting on the concurrency limit.
+     */
+    public static class Queue {
+        private int maxSize = 100;
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.example.rag.controller;
 
 import com.example.rag.model.ChatRequest;
+import com.example.rag.service.AdmissionRejectedException;
 import com.example.rag.service.ChatService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -49,10 +52,17 @@ public class ChatController {
 
     // Endpoint to query the vector DB and send request to Bedrock
     @PostMapping("/query")
-    public ResponseEntity<String> queryVectorDb(@RequestBody String query) {
+    public ResponseEntity<String> queryVectorDb(@RequestBody String query,
+                                                @RequestHeader(value = "X-User-Id", required = false) String userId) {
         LOGGER.info("Received query request: {}", query);
-        String response = chatService.queryAndChat(query);
-        LOGGER.info("Generated response: {}", response);
-        return ResponseEntity.ok(response);
+        try {
+            String response = chatService.queryAndChat(query, userId);
+            LOGGER.info("Generated response: {}", response);
+            return ResponseEntity.ok(response);
+        } catch (AdmissionRejectedException e) {
+            return ResponseEntity.status(e.getStatus())
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(e.getMessage());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,28 @@
+package com.example.rag.service;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * Thrown when an LLM call is shed by {@link LlmAdmissionService} instead of being sent to Bedrock.
+ * Carries the HTTP status the caller should answer with (429 for per-user rate limiting,
+ * 503 for global overload) and a Retry-After hint in seconds.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+    private final HttpStatus status;
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(String message, HttpStatus status, long retryAfterSeconds) {
+        super(message);
+        this.status = status;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
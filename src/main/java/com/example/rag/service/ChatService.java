@@ -28,14 +28,17 @@ public class ChatService {
     private final EmbeddingService embeddingService;
     private final VectorStoreService vectorStoreService;
     private final ChatClient chatClient;
+    private final LlmAdmissionService admissionService;
 
     @Autowired
     public ChatService(EmbeddingService embeddingService,
                        VectorStoreService vectorStoreService,
-                       ChatModel chatModel) {
+                       ChatModel chatModel,
+                       LlmAdmissionService admissionService) {
         this.embeddingService = embeddingService;
         this.vectorStoreService = vectorStoreService;
         this.chatClient = ChatClient.builder(chatModel).build();
+        this.admissionService = admissionService;
     }
 
     public void indexDocument(String document) {
@@ -108,8 +111,12 @@ public class ChatService {
         }
     }
 
-    public String queryAndChat(String query) {
-        LOGGER.info("Processing query: {}", query);
+    public String queryAndChat(String query, String userId) {
+        LOGGER.info("Processing query for user {}: {}", userId, query);
+
+        // Rate limit and shed before spending embedding and vector search capacity on the request;
+        // the token is returned if the request ends without a model call
+        LlmAdmissionService.Admission admission = admissionService.admit(userId);
 
         try {
             // Generate embeddings for the query
@@ -123,20 +130,24 @@ public class ChatService {
 
             if (context.isEmpty()) {
                 LOGGER.warn("No relevant context found for query");
+                // The model is never called, so don't charge the user's rate limit for it
+                admissionService.abandon(admission);
                 return "I don't have enough information to answer that question. Please upload relevant documents first.";
             }
 
             String enhancedPrompt = buildEnhancedPrompt(context, query);
 
-            // Generate response using Spring AI ChatClient
-            String response = chatClient.prompt()
+            // Generate response using Spring AI ChatClient, subject to admission control
+            String response = admissionService.execute(admission, () -> chatClient.prompt()
                     .user(enhancedPrompt)
                     .call()
-                    .content();
+                    .content());
 
             LOGGER.info("Successfully generated response");
             return response;
 
+        } catch (AdmissionRejectedException e) {
+            throw e;
         } catch (Exception e) {
             LOGGER.error("Error generating response: {}", e.getMessage(), e);
             return "I encountered an error while processing your question. Please try again.";
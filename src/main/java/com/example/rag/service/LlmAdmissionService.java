@@ -0,0 +1,542 @@
+package com.example.rag.service;
+
+import com.example.rag.config.LlmAdmissionProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of Bedrock chat calls.
+ *
+ * <ul>
+ *     <li>Callers that identify themselves get a token bucket; an empty bucket is rejected immediately
+ *     with 429. The user id is taken as given, so it must come from a trusted source (e.g. an
+ *     {@code X-User-Id} header set by the gateway). Anonymous callers are only subject to the global
+ *     limit below.</li>
+ *     <li>A global concurrency limit adapts with AIMD: it grows by roughly one per round trip while
+ *     saturated and latency stays under target, and shrinks multiplicatively on slow responses or
+ *     Bedrock throttling.</li>
+ *     <li>Requests over the limit wait in per-user FIFO queues served round-robin, so one heavy user
+ *     cannot starve the others.</li>
+ *     <li>Each request gets an end-to-end deadline starting at {@link #admit}. A model call is only
+ *     started if a typical call can still finish before it; otherwise the request is shed with 503,
+ *     either up front (estimated wait too long) or while queued. Shed requests get their user token
+ *     back.</li>
+ * </ul>
+ *
+ * Callers should {@link #admit} before doing any expensive work for the request (embeddings,
+ * vector search) and only wrap the model call itself in {@link #execute(Admission, Supplier)}.
+ */
+@Service
+public class LlmAdmissionService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LlmAdmissionService.class);
+
+    private static final String ANONYMOUS_QUEUE = "";
+    private static final double LATENCY_EWMA_ALPHA = 0.2;
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+    private static final double THROTTLE_BACKOFF_RATIO = 0.5;
+    private static final double MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final MeterRegistry meterRegistry;
+    private final LongSupplier nanoTime;
+
+    private final int userBurst;
+    private final double userRefillPerMinute;
+    private final int maxTrackedUsers;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long deadlineNanos;
+    private final long targetLatencyNanos;
+    private final long bucketSweepIntervalNanos;
+
+    // Buckets are consumed and evicted inside ConcurrentHashMap.compute* so eviction cannot race consumption
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final TokenBucket overflowBucket;
+    private final AtomicLong lastBucketSweepNanos;
+
+    // Guards the fields below
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, ArrayDeque<Waiter>> userQueues = new HashMap<>();
+    private final ArrayDeque<String> rotation = new ArrayDeque<>();
+    // Volatile only so that gauges can read them without locking
+    private volatile double limit;
+    private volatile int inFlight;
+    private volatile int queued;
+    private double latencyEwmaNanos;
+    private long lastDecreaseNanos;
+
+    // Test hook, run by a queued request after it stops waiting and before it looks at the outcome
+    Runnable beforeWaitOutcome = () -> {
+    };
+
+    private final Timer admittedWaitTimer;
+    private final Timer shedWaitTimer;
+
+    @Autowired
+    public LlmAdmissionService(LlmAdmissionProperties properties, MeterRegistry meterRegistry) {
+        this(properties, meterRegistry, System::nanoTime);
+    }
+
+    LlmAdmissionService(LlmAdmissionProperties properties, MeterRegistry meterRegistry, LongSupplier nanoTime) {
+        validate(properties);
+        this.meterRegistry = meterRegistry;
+        this.nanoTime = nanoTime;
+
+        this.userBurst = properties.getUser().getBurst();
+        this.userRefillPerMinute = properties.getUser().getRefillPerMinute();
+        this.maxTrackedUsers = properties.getUser().getMaxTracked();
+        this.minLimit = properties.getLimit().getMin();
+        this.maxLimit = properties.getLimit().getMax();
+        this.maxQueueSize = properties.getQueue().getMaxSize();
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(properties.getDeadlineMs());
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(properties.getTargetLatencyMs());
+        // A bucket idle this long has refilled completely and is indistinguishable from a new one
+        this.bucketSweepIntervalNanos = (long) Math.ceil(userBurst * MINUTE_NANOS / userRefillPerMinute);
+
+        long now = nanoTime.getAsLong();
+        this.overflowBucket = new TokenBucket(userBurst, userRefillPerMinute, now);
+        this.lastBucketSweepNanos = new AtomicLong(now);
+        this.lastDecreaseNanos = now;
+        this.limit = properties.getLimit().getInitial();
+
+        admittedWaitTimer = Timer.builder("rag.llm.admission.queue.wait")
+                .description("Time spent waiting for an LLM concurrency slot")
+                .tag("outcome", "admitted")
+                .register(meterRegistry);
+        shedWaitTimer = Timer.builder("rag.llm.admission.queue.wait")
+                .description("Time spent waiting for an LLM concurrency slot")
+                .tag("outcome", "shed")
+                .register(meterRegistry);
+        Gauge.builder("rag.llm.admission.limit", this, s -> s.limit)
+                .description("Current adaptive LLM concurrency limit")
+                .register(meterRegistry);
+        Gauge.builder("rag.llm.admission.inflight", this, s -> s.inFlight)
+                .description("LLM calls currently in flight")
+                .register(meterRegistry);
+        Gauge.builder("rag.llm.admission.queued", this, s -> s.queued)
+                .description("LLM calls waiting for admission")
+                .register(meterRegistry);
+
+        LOGGER.info("LLM admission control initialized: limit={} (min={}, max={}), user burst={}, refill={}/min",
+                currentLimit(), minLimit, maxLimit, userBurst, userRefillPerMinute);
+    }
+
+    /**
+     * Takes a token from the user's bucket and checks for global overload, without occupying a
+     * concurrency slot. Starts the request's deadline.
+     *
+     * @param userId trusted caller identity, or {@code null} for anonymous callers
+     * @throws AdmissionRejectedException if the request should be shed
+     */
+    public Admission admit(String userId) {
+        long now = nanoTime.getAsLong();
+        boolean anonymous = userId == null || userId.isBlank();
+        TokenBucket bucket = anonymous ? null : consumeUserToken(userId, now);
+        Admission admission = new Admission(anonymous ? ANONYMOUS_QUEUE : userId, bucket, now + deadlineNanos);
+
+        Rejection rejection;
+        lock.lock();
+        try {
+            rejection = hasFreeSlot() ? null : checkOverload(admission, now);
+        } finally {
+            lock.unlock();
+        }
+        if (rejection != null) {
+            throw shed(admission, rejection);
+        }
+        return admission;
+    }
+
+    /**
+     * Runs {@code call} once a global concurrency slot is available for an admitted request.
+     *
+     * @throws AdmissionRejectedException if the request is shed while waiting
+     */
+    public <T> T execute(Admission admission, Supplier<T> call) {
+        long enqueuedAt = nanoTime.getAsLong();
+        try {
+            acquire(admission);
+        } catch (AdmissionRejectedException e) {
+            shedWaitTimer.record(nanoTime.getAsLong() - enqueuedAt, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+        admittedWaitTimer.record(nanoTime.getAsLong() - enqueuedAt, TimeUnit.NANOSECONDS);
+
+        long start = nanoTime.getAsLong();
+        boolean throttled = false;
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            throttled = isThrottling(e);
+            throw e;
+        } finally {
+            release(nanoTime.getAsLong() - start, throttled);
+        }
+    }
+
+    /**
+     * Shorthand for {@link #admit} followed by {@link #execute(Admission, Supplier)}.
+     */
+    public <T> T execute(String userId, Supplier<T> call) {
+        return execute(admit(userId), call);
+    }
+
+    /**
+     * Gives the user's token back for an admitted request that ended without calling the model.
+     */
+    public void abandon(Admission admission) {
+        refund(admission);
+    }
+
+    int trackedUserCount() {
+        return userBuckets.size();
+    }
+
+    private TokenBucket consumeUserToken(String userId, long now) {
+        boolean known = userBuckets.containsKey(userId);
+        if (!known) {
+            evictIdleBuckets(now);
+        }
+
+        long[] waitNanos = new long[1];
+        TokenBucket bucket;
+        if (!known && userBuckets.size() >= maxTrackedUsers) {
+            // Too many distinct ids: newcomers share one bucket instead of each getting a fresh burst
+            bucket = overflowBucket;
+            waitNanos[0] = bucket.tryConsume(now);
+        } else {
+            bucket = userBuckets.compute(userId, (k, existing) -> {
+                TokenBucket current = existing != null ? existing : new TokenBucket(userBurst, userRefillPerMinute, now);
+                waitNanos[0] = current.tryConsume(now);
+                return current;
+            });
+        }
+
+        if (waitNanos[0] > 0) {
+            throw reject("rate_limited", HttpStatus.TOO_MANY_REQUESTS, waitNanos[0],
+                    "Rate limit exceeded for user " + userId);
+        }
+        return bucket;
+    }
+
+    private void evictIdleBuckets(long now) {
+        // At most one sweep per interval, done by whichever thread wins the CAS
+        long last = lastBucketSweepNanos.get();
+        if (now - last < bucketSweepIntervalNanos || !lastBucketSweepNanos.compareAndSet(last, now)) {
+            return;
+        }
+        for (String userId : userBuckets.keySet()) {
+            userBuckets.computeIfPresent(userId, (k, bucket) -> bucket.isFull(now) ? null : bucket);
+        }
+    }
+
+    private void acquire(Admission admission) {
+        Rejection rejection;
+        lock.lock();
+        try {
+            rejection = awaitSlot(admission);
+        } finally {
+            lock.unlock();
+        }
+        if (rejection != null) {
+            throw shed(admission, rejection);
+        }
+    }
+
+    /**
+     * Takes a concurrency slot, queueing if necessary. Must be called with the lock held.
+     *
+     * @return {@code null} once the slot is taken, otherwise why the request was shed
+     */
+    private Rejection awaitSlot(Admission admission) {
+        long now = nanoTime.getAsLong();
+        if (admission.deadline - now < latencyEwmaNanos) {
+            return new Rejection("deadline_exceeded", estimateWaitNanos(),
+                    "LLM request has too little time left to complete");
+        }
+        if (hasFreeSlot()) {
+            inFlight++;
+            return null;
+        }
+        Rejection overload = checkOverload(admission, now);
+        if (overload != null) {
+            return overload;
+        }
+
+        Waiter waiter = new Waiter(admission.deadline, lock.newCondition());
+        userQueues.computeIfAbsent(admission.queueKey, k -> {
+            rotation.addLast(k);
+            return new ArrayDeque<>();
+        }).addLast(waiter);
+        queued++;
+
+        // Stop waiting once a typical call could no longer finish before the deadline
+        long remaining = admission.deadline - (long) latencyEwmaNanos - now;
+        boolean interrupted = false;
+        while (!waiter.admitted && !waiter.dropped && remaining > 0) {
+            try {
+                remaining = waiter.condition.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        beforeWaitOutcome.run();
+        if (waiter.admitted) {
+            // Possibly admitted just as the wait ran out; the slot is ours either way
+            return null;
+        }
+        removeWaiter(admission.queueKey, waiter);
+        if (interrupted) {
+            return new Rejection("interrupted", estimateWaitNanos(), "LLM request interrupted while queued");
+        }
+        return new Rejection("deadline_exceeded", estimateWaitNanos(),
+                "LLM request could not be admitted in time to finish before its deadline");
+    }
+
+    private void release(long latencyNanos, boolean throttled) {
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= currentLimit();
+            inFlight--;
+            adjustLimit(latencyNanos, throttled, saturated);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasFreeSlot() {
+        return queued == 0 && inFlight < currentLimit();
+    }
+
+    private Rejection checkOverload(Admission admission, long now) {
+        if (queued >= maxQueueSize) {
+            return new Rejection("queue_full", estimateWaitNanos(), "LLM request queue is full");
+        }
+        long estimatedWait = estimateWaitNanos();
+        if (estimatedWait + latencyEwmaNanos > admission.deadline - now) {
+            return new Rejection("overloaded", estimatedWait,
+                    "LLM capacity exhausted; request could not finish before its deadline");
+        }
+        return null;
+    }
+
+    private void adjustLimit(long latencyNanos, boolean throttled, boolean saturated) {
+        latencyEwmaNanos = latencyEwmaNanos == 0
+                ? latencyNanos
+                : latencyEwmaNanos * (1 - LATENCY_EWMA_ALPHA) + latencyNanos * LATENCY_EWMA_ALPHA;
+
+        long now = nanoTime.getAsLong();
+        if (throttled || latencyNanos > targetLatencyNanos) {
+            // Back off at most once per round trip so a burst of slow calls doesn't collapse the limit
+            if (now - lastDecreaseNanos < latencyEwmaNanos) {
+                return;
+            }
+            double previous = limit;
+            limit = Math.max(minLimit, limit * (throttled ? THROTTLE_BACKOFF_RATIO : LATENCY_BACKOFF_RATIO));
+            lastDecreaseNanos = now;
+            LOGGER.warn("Reducing LLM concurrency limit {} -> {} ({})", String.format("%.2f", previous),
+                    String.format("%.2f", limit), throttled ? "throttled" : "latency over target");
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private void dispatch() {
+        long now = nanoTime.getAsLong();
+        while (inFlight < currentLimit() && !rotation.isEmpty()) {
+            String queueKey = rotation.pollFirst();
+            ArrayDeque<Waiter> queue = userQueues.get(queueKey);
+            Waiter waiter = queue.pollFirst();
+            queued--;
+            if (queue.isEmpty()) {
+                userQueues.remove(queueKey);
+            } else {
+                rotation.addLast(queueKey);
+            }
+
+            // Too late to finish in time; shed it now and hand the slot to someone who still can
+            if (waiter.deadline - now < latencyEwmaNanos) {
+                waiter.dropped = true;
+                waiter.condition.signal();
+                continue;
+            }
+            inFlight++;
+            waiter.admitted = true;
+            waiter.condition.signal();
+        }
+    }
+
+    private void removeWaiter(String queueKey, Waiter waiter) {
+        ArrayDeque<Waiter> queue = userQueues.get(queueKey);
+        if (queue == null || !queue.remove(waiter)) {
+            // Already dropped by dispatch()
+            return;
+        }
+        queued--;
+        if (queue.isEmpty()) {
+            userQueues.remove(queueKey);
+            rotation.remove(queueKey);
+        }
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+    private long estimateWaitNanos() {
+        return (long) ((queued + 1) * latencyEwmaNanos / currentLimit());
+    }
+
+    private void refund(Admission admission) {
+        if (admission.bucket != null && !admission.refunded) {
+            admission.refunded = true;
+            admission.bucket.refund(nanoTime.getAsLong());
+        }
+    }
+
+    private AdmissionRejectedException shed(Admission admission, Rejection rejection) {
+        // Global overload is not the user's fault, so it shouldn't cost them rate limit budget
+        refund(admission);
+        return reject(rejection.reason(), HttpStatus.SERVICE_UNAVAILABLE, rejection.retryAfterNanos(),
+                rejection.message());
+    }
+
+    private AdmissionRejectedException reject(String reason, HttpStatus status, long retryAfterNanos, String message) {
+        // Counted by rag.llm.admission.rejected; logging every rejection under load would only add I/O
+        meterRegistry.counter("rag.llm.admission.rejected", "reason", reason).increment();
+        LOGGER.debug("Rejected LLM request ({}): {}", reason, message);
+        long retryAfterMillis = TimeUnit.NANOSECONDS.toMillis(retryAfterNanos);
+        long retryAfterSeconds = Math.max(1, (long) Math.ceil(retryAfterMillis / 1000.0));
+        return new AdmissionRejectedException(message, status, retryAfterSeconds);
+    }
+
+    private static boolean isThrottling(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SdkServiceException sdkException && sdkException.isThrottlingException()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void validate(LlmAdmissionProperties properties) {
+        LlmAdmissionProperties.Limit limit = properties.getLimit();
+        if (limit.getMin() < 1) {
+            throw new IllegalArgumentException("rag.llm.admission.limit.min must be at least 1");
+        }
+        if (limit.getInitial() < limit.getMin() || limit.getInitial() > limit.getMax()) {
+            throw new IllegalArgumentException("rag.llm.admission.limit must satisfy min <= initial <= max");
+        }
+        if (properties.getUser().getBurst() < 1 || properties.getUser().getRefillPerMinute() <= 0
+                || properties.getUser().getMaxTracked() < 1) {
+            throw new IllegalArgumentException("rag.llm.admission.user burst, refill-per-minute and max-tracked must be positive");
+        }
+        if (properties.getQueue().getMaxSize() < 1) {
+            throw new IllegalArgumentException("rag.llm.admission.queue.max-size must be positive");
+        }
+        if (properties.getDeadlineMs() <= 0 || properties.getTargetLatencyMs() <= 0) {
+            throw new IllegalArgumentException("rag.llm.admission deadline-ms and target-latency-ms must be positive");
+        }
+    }
+
+    /**
+     * A request that has passed rate limiting and may now wait for a concurrency slot.
+     */
+    public static final class Admission {
+        private final String queueKey;
+        private final TokenBucket bucket;
+        private final long deadline;
+        private boolean refunded;
+
+        private Admission(String queueKey, TokenBucket bucket, long deadline) {
+            this.queueKey = queueKey;
+            this.bucket = bucket;
+            this.deadline = deadline;
+        }
+    }
+
+    private record Rejection(String reason, long retryAfterNanos, String message) {
+    }
+
+    private static final class Waiter {
+        private final long deadline;
+        private final Condition condition;
+        private boolean admitted;
+        private boolean dropped;
+
+        private Waiter(long deadline, Condition condition) {
+            this.deadline = deadline;
+            this.condition = condition;
+        }
+    }
+
+    private static final class TokenBucket {
+        private final double capacity;
+        private final double refillPerMinute;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(double capacity, double refillPerMinute, long now) {
+            this.capacity = capacity;
+            this.refillPerMinute = refillPerMinute;
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        /**
+         * Takes a token if one is available.
+         *
+         * @return 0 on success, otherwise the nanoseconds until the next token is available
+         */
+        private synchronized long tryConsume(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * MINUTE_NANOS / refillPerMinute);
+        }
+
+        private synchronized void refund(long now) {
+            refill(now);
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        private synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMinute / MINUTE_NANOS);
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.rag.service;
+
+import com.example.rag.config.LlmAdmissionProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LlmAdmissionServiceTest {
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private LlmAdmissionProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new LlmAdmissionProperties();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void bucketRefillsAndReportsRetryAfter() {
+        properties.getUser().setBurst(2);
+        properties.getUser().setRefillPerMinute(30);
+        LlmAdmissionService service = newService();
+
+        service.execute("alice", () -> "ok");
+        service.execute("alice", () -> "ok");
+        assertRejected(() -> service.execute("alice", () -> "ok"), HttpStatus.TOO_MANY_REQUESTS, 2);
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertRejected(() -> service.execute("alice", () -> "ok"), HttpStatus.TOO_MANY_REQUESTS, 1);
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(service.execute("alice", () -> "ok")).isEqualTo("ok");
+        assertThat(rejected("rate_limited")).isEqualTo(2);
+    }
+
+    @Test
+    void anonymousCallersAreNotRateLimitedAsOneUser() {
+        properties.getUser().setBurst(1);
+        LlmAdmissionService service = newService();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(service.execute((String) null, () -> "ok")).isEqualTo("ok");
+        }
+        assertThat(rejected("rate_limited")).isZero();
+    }
+
+    @Test
+    void abandonedAdmissionGivesTheTokenBack() {
+        properties.getUser().setBurst(1);
+        LlmAdmissionService service = newService();
+
+        service.abandon(service.admit("alice"));
+        assertThat(service.execute("alice", () -> "ok")).isEqualTo("ok");
+    }
+
+    @Test
+    void newIdsBeyondTheCapShareOneBucketUntilIdleBucketsAreEvicted() {
+        properties.getUser().setBurst(1);
+        properties.getUser().setRefillPerMinute(60);
+        properties.getUser().setMaxTracked(2);
+        LlmAdmissionService service = newService();
+
+        service.execute("a", () -> "ok");
+        service.execute("b", () -> "ok");
+        service.execute("c", () -> "ok");
+        assertThat(service.trackedUserCount()).isEqualTo(2);
+        assertRejected(() -> service.execute("d", () -> "ok"), HttpStatus.TOO_MANY_REQUESTS, 1);
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        service.execute("e", () -> "ok");
+        assertThat(service.trackedUserCount()).isEqualTo(1);
+    }
+
+    @Test
+    void queuedRequestsAreServedRoundRobinAcrossUsers() throws Exception {
+        fixLimit(1);
+        LlmAdmissionService service = newService();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+
+        List<Future<?>> calls = new ArrayList<>();
+        calls.add(executor.submit(() -> service.execute("heavy", () -> {
+            await(releaseFirst);
+            order.add("heavy-0");
+            return "ok";
+        })));
+        waitFor(() -> gauge("rag.llm.admission.inflight") == 1);
+
+        for (int i = 1; i <= 3; i++) {
+            String name = "heavy-" + i;
+            calls.add(executor.submit(() -> service.execute("heavy", () -> order.add(name))));
+            int expectedQueued = i;
+            waitFor(() -> gauge("rag.llm.admission.queued") == expectedQueued);
+        }
+        calls.add(executor.submit(() -> service.execute("light", () -> order.add("light-1"))));
+        waitFor(() -> gauge("rag.llm.admission.queued") == 4);
+
+        releaseFirst.countDown();
+        for (Future<?> call : calls) {
+            call.get(5, TimeUnit.SECONDS);
+        }
+        assertThat(order).containsExactly("heavy-0", "heavy-1", "light-1", "heavy-2", "heavy-3");
+    }
+
+    @Test
+    void waiterIsShedAtDeadlineAndGetsItsTokenBack() throws Exception {
+        fixLimit(1);
+        properties.getUser().setBurst(1);
+        properties.setDeadlineMs(50);
+        LlmAdmissionService service = newService();
+        CountDownLatch releaseHolder = new CountDownLatch(1);
+
+        Future<String> holder = executor.submit(() -> service.execute("alice", () -> {
+            await(releaseHolder);
+            return "ok";
+        }));
+        waitFor(() -> gauge("rag.llm.admission.inflight") == 1);
+
+        assertRejected(() -> service.execute("bob", () -> "ok"), HttpStatus.SERVICE_UNAVAILABLE, 1);
+        assertThat(rejected("deadline_exceeded")).isEqualTo(1);
+        assertThat(gauge("rag.llm.admission.queued")).isZero();
+
+        releaseHolder.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+        // Bob's only token was refunded when he was shed, so this succeeds without advancing the clock
+        assertThat(service.execute("bob", () -> "ok")).isEqualTo("ok");
+    }
+
+    @Test
+    void waiterAdmittedAsItsWaitRunsOutKeepsTheSlot() throws Exception {
+        fixLimit(1);
+        LlmAdmissionService service = newService();
+        CountDownLatch releaseHolder = new CountDownLatch(1);
+
+        Future<String> holder = executor.submit(() -> service.execute("alice", () -> {
+            await(releaseHolder);
+            return "ok";
+        }));
+        waitFor(() -> gauge("rag.llm.admission.inflight") == 1);
+
+        // Bob's deadline passes between being dispatched and looking at the outcome
+        service.beforeWaitOutcome = () -> clock.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        Future<String> bob = executor.submit(() -> service.execute("bob", () -> "bob"));
+        waitFor(() -> gauge("rag.llm.admission.queued") == 1);
+
+        releaseHolder.countDown();
+        assertThat(bob.get(5, TimeUnit.SECONDS)).isEqualTo("bob");
+        holder.get(5, TimeUnit.SECONDS);
+        assertThat(rejected("deadline_exceeded")).isZero();
+        assertThat(gauge("rag.llm.admission.inflight")).isZero();
+    }
+
+    @Test
+    void waiterIsShedWhenTooLittleTimeIsLeftToFinish() throws Exception {
+        fixLimit(1);
+        properties.setDeadlineMs(10_000);
+        LlmAdmissionService service = newService();
+        // Establish a typical call latency of 3s
+        service.execute((String) null, () -> clock.addAndGet(TimeUnit.SECONDS.toNanos(3)));
+
+        CountDownLatch releaseHolder = new CountDownLatch(1);
+        Future<String> holder = executor.submit(() -> service.execute("alice", () -> {
+            await(releaseHolder);
+            return "ok";
+        }));
+        waitFor(() -> gauge("rag.llm.admission.inflight") == 1);
+
+        AtomicBoolean bobRan = new AtomicBoolean();
+        Future<String> bob = executor.submit(() -> service.execute("bob", () -> {
+            bobRan.set(true);
+            return "bob";
+        }));
+        waitFor(() -> gauge("rag.llm.admission.queued") == 1);
+
+        // Bob is dispatched with 2s of his 10s budget left, less than a typical call now takes
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(8));
+        releaseHolder.countDown();
+
+        assertThatThrownBy(() -> bob.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(AdmissionRejectedException.class);
+        holder.get(5, TimeUnit.SECONDS);
+        assertThat(bobRan).isFalse();
+        assertThat(rejected("deadline_exceeded")).isEqualTo(1);
+        assertThat(gauge("rag.llm.admission.inflight")).isZero();
+    }
+
+    @Test
+    void interruptedWaiterIsRejectedWithItsOwnReason() throws Exception {
+        fixLimit(1);
+        LlmAdmissionService service = newService();
+        CountDownLatch releaseHolder = new CountDownLatch(1);
+        AtomicReference<Object> bobResult = new AtomicReference<>();
+
+        Future<String> holder = executor.submit(() -> service.execute("alice", () -> {
+            await(releaseHolder);
+            return "ok";
+        }));
+        waitFor(() -> gauge("rag.llm.admission.inflight") == 1);
+
+        Thread bob = new Thread(() -> {
+            try {
+                bobResult.set(service.execute("bob", () -> "bob"));
+            } catch (RuntimeException e) {
+                bobResult.set(e);
+            }
+        });
+        bob.start();
+        waitFor(() -> gauge("rag.llm.admission.queued") == 1);
+        bob.interrupt();
+        bob.join(5000);
+
+        assertThat(bobResult.get()).isInstanceOf(AdmissionRejectedException.class);
+        assertThat(rejected("interrupted")).isEqualTo(1);
+        assertThat(rejected("deadline_exceeded")).isZero();
+
+        releaseHolder.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void limitBacksOffOnThrottling() {
+        properties.getLimit().setInitial(8);
+        LlmAdmissionService service = newService();
+
+        assertThatThrownBy(() -> service.execute("alice", () -> {
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            throw SdkServiceException.builder().statusCode(429).message("Too many requests").build();
+        })).isInstanceOf(SdkServiceException.class);
+
+        assertThat(gauge("rag.llm.admission.limit")).isEqualTo(4.0);
+    }
+
+    @Test
+    void limitGrowsOnlyWhileSaturated() throws Exception {
+        properties.getLimit().setInitial(2);
+        properties.getLimit().setMax(8);
+        LlmAdmissionService service = newService();
+
+        for (int i = 0; i < 5; i++) {
+            service.execute((String) null, () -> "ok");
+        }
+        assertThat(gauge("rag.llm.admission.limit")).isEqualTo(2.0);
+
+        CountDownLatch releaseHolder = new CountDownLatch(1);
+        Future<String> holder = executor.submit(() -> service.execute("bob", () -> {
+            await(releaseHolder);
+            return "ok";
+        }));
+        waitFor(() -> gauge("rag.llm.admission.inflight") == 1);
+
+        // Two calls in flight against a limit of two: completing one grows the limit by 1/limit
+        service.execute("alice", () -> "ok");
+        releaseHolder.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+
+        assertThat(gauge("rag.llm.admission.limit")).isEqualTo(2.5);
+    }
+
+    @Test
+    void invalidLimitsAreRejected() {
+        properties.getLimit().setMin(0);
+        assertThatThrownBy(this::newService).isInstanceOf(IllegalArgumentException.class);
+
+        properties.getLimit().setMin(1);
+        properties.getLimit().setInitial(100);
+        assertThatThrownBy(this::newService).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private LlmAdmissionService newService() {
+        return new LlmAdmissionService(properties, registry, clock::get);
+    }
+
+    private void fixLimit(int value) {
+        properties.getLimit().setMin(value);
+        properties.getLimit().setInitial(value);
+        properties.getLimit().setMax(value);
+    }
+
+    private double gauge(String name) {
+        return registry.get(name).gauge().value();
+    }
+
+    private double rejected(String reason) {
+        return registry.counter("rag.llm.admission.rejected", "reason", reason).count();
+    }
+
+    private static void assertRejected(Runnable call, HttpStatus status, long retryAfterSeconds) {
+        assertThatThrownBy(call::run)
+                .isInstanceOfSatisfying(AdmissionRejectedException.class, e -> {
+                    assertThat(e.getStatus()).isEqualTo(status);
+                    assertThat(e.getRetryAfterSeconds()).isEqualTo(retryAfterSeconds);
+                });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting for latch");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out waiting for condition");
+            }
+            Thread.onSpinWait();
+        }
+    }
+}